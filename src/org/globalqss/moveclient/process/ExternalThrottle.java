@@ -0,0 +1,177 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss                                           *
+ * Sponsored by FH                                                     *
+ **********************************************************************/
+
+package org.globalqss.moveclient.process;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+
+public class ExternalThrottle {
+
+	// Throttle the queries and rows read from the external database, to avoid saturating a live source
+	// the rows per second are capped and the load of the source is sampled with a cheap probe query,
+	// when the probe takes longer than the threshold a pause is introduced periodically while reading,
+	// doubling while the source is slow and halving again when it recovers,
+	// the backoff is kept per connection as the validation and the extraction can run on different servers
+	// NOTE the reads must stream (fetch size and no autocommit on PostgreSQL) for the throttle to slow the source,
+	// the transaction is scoped to each streamed read so the source doesn't keep the locks for the whole process
+
+	private static final CLogger log = CLogger.getCLogger(ExternalThrottle.class);
+
+	public static final int FETCH_SIZE = 1000;
+
+	private static final long MAX_PAUSE_MS = 30000;
+	private static final long PROBE_INTERVAL_MS = 1000;
+	private static final String PROBE_SQL = "SELECT 1 FROM Dual";
+
+	private final int maxRowsPerSecond; // 0 = no limit
+	private final int maxLatencyMS; // 0 = no adaptive backoff
+
+	private final Map<Connection, Backoff> backoffs = new IdentityHashMap<Connection, Backoff>();
+	private long windowStart = 0; // started on the first row read
+	private int windowRows = 0;
+
+	public ExternalThrottle(int maxRowsPerSecond, int maxLatencyMS) {
+		this.maxRowsPerSecond = maxRowsPerSecond > 0 ? maxRowsPerSecond : 0;
+		this.maxLatencyMS = maxLatencyMS > 0 ? maxLatencyMS : 0;
+	}
+
+	public ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+		backoff(stmt.getConnection());
+		stmt.setFetchSize(FETCH_SIZE);
+		return stmt.executeQuery();
+	}
+
+	public ResultSet stream(PreparedStatement stmt) throws SQLException {
+		stmt.getConnection().setAutoCommit(false);
+		return executeQuery(stmt);
+	}
+
+	public void close(ResultSet rs, PreparedStatement stmt) {
+		// close a streamed read and end its transaction
+		Connection conn = null;
+		try {
+			if (stmt != null)
+				conn = stmt.getConnection();
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Could not get the connection of the statement", e);
+		}
+		DB.close(rs, stmt);
+		if (conn != null) {
+			try {
+				if (! conn.getAutoCommit()) {
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Could not end the transaction of the external read", e);
+			}
+		}
+	}
+
+	public boolean next(ResultSet rs) throws SQLException {
+		if (maxRowsPerSecond > 0) {
+			long now = System.currentTimeMillis();
+			if (windowStart == 0) {
+				windowStart = now;
+			}
+			windowRows++;
+			if (windowRows > maxRowsPerSecond) {
+				pause(1000 - (now - windowStart));
+				windowStart = System.currentTimeMillis();
+				windowRows = 1;
+			}
+		}
+		backoff(rs.getStatement().getConnection());
+		return rs.next();
+	}
+
+	private void backoff(Connection conn) throws SQLException {
+		if (maxLatencyMS <= 0) {
+			return;
+		}
+		Backoff backoff = backoffs.get(conn);
+		if (backoff == null) {
+			backoff = new Backoff();
+			backoffs.put(conn, backoff);
+		}
+		long now = System.currentTimeMillis();
+		if (now - backoff.lastProbe < PROBE_INTERVAL_MS) {
+			return;
+		}
+		long latency = probe(conn);
+		if (latency > maxLatencyMS) {
+			backoff.pauseMS = Math.min(Math.max(backoff.pauseMS * 2, latency), MAX_PAUSE_MS);
+			if (log.isLoggable(Level.INFO)) log.info("External probe took " + latency + "ms, backing off " + backoff.pauseMS + "ms");
+		} else {
+			backoff.pauseMS = backoff.pauseMS / 2;
+		}
+		pause(backoff.pauseMS);
+		backoff.lastProbe = System.currentTimeMillis();
+	}
+
+	private long probe(Connection conn) throws SQLException {
+		String sql = DB.getDatabase().convertStatement(PROBE_SQL);
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		long start = System.currentTimeMillis();
+		try {
+			stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			rs = stmt.executeQuery();
+			rs.next();
+		} finally {
+			DB.close(rs, stmt);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private void pause(long ms) {
+		if (ms <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AdempiereException("Interrupted while throttling the external database");
+		}
+	}
+
+	private static class Backoff {
+		private long pauseMS = 0;
+		private long lastProbe = 0;
+	}
+
+}
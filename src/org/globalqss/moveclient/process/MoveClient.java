@@ -29,6 +29,7 @@ package org.globalqss.moveclient.process;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -56,16 +57,25 @@ public class MoveClient extends SvrProcess {
 	private String p_ClientsToInclude; // optional, comma separated list, if empty then all clients >= 1000000 will be moved
 	private String p_ClientsToExclude; // optional, comma separated list of clients to exclude
 	private boolean p_IsValidateOnly; // to do just validation and not execute the process
+	private String p_Replica_JDBC_URL; // optional, JDBC URL of a read replica to extract the data from, validation runs against JDBC_URL
+	private int p_MaxRowsPerSecond; // optional, cap the rows read per second from the external database, 0 = no limit
+	private int p_MaxLatencyMS; // optional, back off when an external query takes longer than this, 0 = no backoff
+	private boolean p_IsSetBased; // optional, load raw rows into staging tables and convert the IDs with one INSERT ... SELECT per table
 
 	final static String insertConversionId = "INSERT INTO T_MoveClient (AD_PInstance_ID, TableName, Source_ID, Target_ID) VALUES (?, ?, ?, ?)";
+	final static String convertRecordID = "@Record_ID@"; // the table to convert depends on AD_Table_ID of the row
+	final static String convertPreference = "@AD_Preference@"; // the table to convert depends on Attribute of the row
 
 	private Connection externalConn;
+	private Connection extractConn; // same as externalConn unless a replica is configured
+	private ExternalThrottle throttle;
 	private StringBuffer p_excludeTablesWhere = new StringBuffer();
 	private StringBuffer p_whereClient = new StringBuffer();
 	private List<String> p_errorList = new ArrayList<String>();
 	private List<String> p_tablesVerified = new ArrayList<String>();
 	private List<String> p_columnsVerified = new ArrayList<String>();
 	private List<String> p_idSystemConversion = new ArrayList<String>(); // can consume lot of memory but it helps for performance
+	private String p_tableMapStaging = null; // staging table with the external AD_Table_ID/TableName, used to convert Record_ID
 
 	@Override
 	protected void prepare() {
@@ -85,6 +95,14 @@ public class MoveClient extends SvrProcess {
 				p_ClientsToExclude = para.getParameterAsString();
 			} else if ("IsValidateOnly".equals(name)) {
 				p_IsValidateOnly = para.getParameterAsBoolean();
+			} else if ("MoveClient_Replica_JDBC_URL".equals(name)) {
+				p_Replica_JDBC_URL = para.getParameterAsString();
+			} else if ("MoveClient_MaxRowsPerSecond".equals(name)) {
+				p_MaxRowsPerSecond = para.getParameterAsInt();
+			} else if ("MoveClient_MaxLatencyMS".equals(name)) {
+				p_MaxLatencyMS = para.getParameterAsInt();
+			} else if ("MoveClient_IsSetBased".equals(name)) {
+				p_IsSetBased = para.getParameterAsBoolean();
 			} else {
 				log.log(Level.SEVERE, "Unknown Parameter: " + name);
 			}
@@ -102,6 +120,8 @@ public class MoveClient extends SvrProcess {
 			p_UserName = CConnection.get().getDbUid();
 		if (Util.isEmpty(p_Password, true))
 			p_Password = CConnection.get().getDbPwd();
+		if (p_IsSetBased && ! DB.isPostgreSQL())
+			throw new AdempiereException("Set-based load is only supported on PostgreSQL");
 
 		// Construct the where clauses
 		p_excludeTablesWhere.append("(UPPER(AD_Table.TableName) NOT LIKE 'T|_%' ESCAPE '|'"); // exclude temporary tables
@@ -155,14 +175,26 @@ public class MoveClient extends SvrProcess {
 			p_whereClient.append(")");
 		}
 
+		throttle = new ExternalThrottle(p_MaxRowsPerSecond, p_MaxLatencyMS);
+
 		// Make the connection to external database
 		externalConn = null;
+		extractConn = null;
 		try {
 			try {
 				externalConn = DB.getDatabase(p_JDBC_URL).getDriverConnection(p_JDBC_URL, p_UserName, p_Password);
 			} catch (Exception e) {
 				throw new AdempiereException("Could not get a connection to " + p_JDBC_URL + ",\nCause: " + e.getLocalizedMessage());
 			}
+			if (Util.isEmpty(p_Replica_JDBC_URL, true)) {
+				extractConn = externalConn;
+			} else {
+				try {
+					extractConn = DB.getDatabase(p_Replica_JDBC_URL).getDriverConnection(p_Replica_JDBC_URL, p_UserName, p_Password);
+				} catch (Exception e) {
+					throw new AdempiereException("Could not get a connection to " + p_Replica_JDBC_URL + ",\nCause: " + e.getLocalizedMessage());
+				}
+			}
 
 			validate();
 			if (p_errorList.size() > 0) {
@@ -176,6 +208,8 @@ public class MoveClient extends SvrProcess {
 				moveClient();
 			}
 		} finally {
+			if (extractConn != null && extractConn != externalConn)
+				extractConn.close();
 			if (externalConn != null)
 				externalConn.close();
 		}
@@ -244,7 +278,7 @@ public class MoveClient extends SvrProcess {
 		ResultSet rsRT = null;
 		try {
 			stmtRT = externalConn.prepareStatement(sqlRemoteTables, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			rsRT = stmtRT.executeQuery();
+			rsRT = throttle.executeQuery(stmtRT);
 			while (rsRT.next()) {
 				String tableName = rsRT.getString(1);
 				validateExternalTable(tableName);
@@ -306,7 +340,7 @@ public class MoveClient extends SvrProcess {
 		try {
 			stmtRC = externalConn.prepareStatement(sqlRemoteColumns, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 			stmtRC.setString(1, tableName.toUpperCase());
-			rsRC = stmtRC.executeQuery();
+			rsRC = throttle.executeQuery(stmtRC);
 			while (rsRC.next()) {
 				String columnName = rsRC.getString(1);
 				int refID = rsRC.getInt(2);
@@ -410,7 +444,7 @@ public class MoveClient extends SvrProcess {
 			ResultSet rsFC = null;
 			try {
 				stmtFC = externalConn.prepareStatement(sqlForeignClient, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-				rsFC = stmtFC.executeQuery();
+				rsFC = throttle.executeQuery(stmtFC);
 				while (rsFC.next()) {
 					int clientID = rsFC.getInt(1);
 					int foreignID = rsFC.getInt(2);
@@ -454,7 +488,7 @@ public class MoveClient extends SvrProcess {
 		ResultSet rs = null;
 		try {
 			stmt = externalConn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			rs = stmt.executeQuery();
+			rs = throttle.executeQuery(stmt);
 			if (rs.next())
 				cnt = rs.getInt(1);
 		} catch (SQLException e) {
@@ -498,9 +532,9 @@ public class MoveClient extends SvrProcess {
 			PreparedStatement stmtGI = null;
 			ResultSet rsGI = null;
 			try {
-				stmtGI = externalConn.prepareStatement(selectGetIds, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-				rsGI = stmtGI.executeQuery();
-				while (rsGI.next()) {
+				stmtGI = extractConn.prepareStatement(selectGetIds, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				rsGI = throttle.stream(stmtGI);
+				while (throttle.next(rsGI)) {
 					int sourceID = rsGI.getInt(1);
 					int targetID = DB.getNextID(getAD_Client_ID(), tableName, get_TrxName());
 					DB.executeUpdateEx(insertConversionId,
@@ -510,82 +544,56 @@ public class MoveClient extends SvrProcess {
 			} catch (SQLException e) {
 				throw new AdempiereException("Could not execute external query: " + selectGetIds + "\nCause = " + e.getLocalizedMessage());
 			} finally {
-				DB.close(rsGI, stmtGI);
+				throttle.close(rsGI, stmtGI);
 			}
 
 		}
 
+		if (p_IsSetBased) {
+			// the ID conversion table is joined once per foreign key, refresh its statistics
+			DB.executeUpdateEx("ANALYZE T_MoveClient", get_TrxName());
+		}
+
 		// get the source data and insert into target converting the IDs
 		for (MTable table : tables) {
 			String tableName = table.getTableName();
 			if (! p_tablesVerified.contains(tableName.toUpperCase())) {
 				continue;
 			}
+			if (p_IsSetBased) {
+				insertDataSetBased(table);
+				continue;
+			}
 			statusUpdate("Inserting data for table " + tableName);
 			StringBuilder valuesSB = new StringBuilder();
 			StringBuilder columnsSB = new StringBuilder();
 			StringBuilder qColumnsSB = new StringBuilder();
-			int ncols = 0;
-			List<MColumn> columns = new ArrayList<MColumn>();
-			for (MColumn column : table.getColumns(false)) {
-				if (!column.isActive() || column.getColumnSQL() != null) {
-					continue;
-				}
-				String columnName = column.getColumnName();
-				if (! p_columnsVerified.contains(tableName.toUpperCase() + "." + columnName.toUpperCase())) {
-					continue;
-				}
-				if (columnsSB.length() > 0) {
-					qColumnsSB.append(",");
-					columnsSB.append(",");
-					valuesSB.append(",");
-				}
-				qColumnsSB.append(tableName).append(".").append(columnName);
-				columnsSB.append(columnName);
-				valuesSB.append("?");
-				columns.add(column);
-				ncols++;
+			List<MColumn> columns = getColumnsToMove(table, columnsSB, qColumnsSB, valuesSB);
+			int ncols = columns.size();
+			String[] convertTables = new String[ncols];
+			for (int i = 0; i < ncols; i++) {
+				convertTables[i] = getConvertTable(table, columns.get(i));
 			}
 			StringBuilder insertSB = new StringBuilder()
 					.append("INSERT INTO ").append(tableName).append("(").append(columnsSB).append(") VALUES (").append(valuesSB).append(")");
-			StringBuilder selectGetDataSB = new StringBuilder()
-					.append("SELECT ").append(qColumnsSB)
-					.append(" FROM ").append(tableName);
-			if ("AD_PInstance_Log".equalsIgnoreCase(tableName)) {
-				selectGetDataSB.append(" JOIN AD_PInstance ON (AD_PInstance_Log.AD_PInstance_ID=AD_PInstance.AD_PInstance_ID)");
-				selectGetDataSB.append(" JOIN AD_Client ON (AD_PInstance.AD_Client_ID=AD_Client.AD_Client_ID)");
-			} else if (! "AD_Client".equalsIgnoreCase(tableName)) {
-				selectGetDataSB.append(" JOIN AD_Client ON (").append(tableName).append(".AD_Client_ID=AD_Client.AD_Client_ID)");
-			}
-			selectGetDataSB.append(" WHERE ").append(p_whereClient);
-			String selectGetData = DB.getDatabase().convertStatement(selectGetDataSB.toString());
+			String selectGetData = getSelectExternalData(tableName, qColumnsSB);
 			PreparedStatement stmtGD = null;
 			ResultSet rsGD = null;
 			Object[] parameters = new Object[ncols];
 			try {
-				stmtGD = externalConn.prepareStatement(selectGetData, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-				rsGD = stmtGD.executeQuery();
-				while (rsGD.next()) {
+				stmtGD = extractConn.prepareStatement(selectGetData, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				rsGD = throttle.stream(stmtGD);
+				while (throttle.next(rsGD)) {
 					for (int i = 0; i < ncols; i++) {
 						MColumn column = columns.get(i);
 						String columnName = column.getColumnName();
-						String convertTable = column.getReferenceTableName();
-						if ((tableName + "_ID").equalsIgnoreCase(columnName)) {
-							convertTable = tableName;
-						} else if ("C_BPartner".equalsIgnoreCase(tableName) && "AD_OrgBP_ID".equalsIgnoreCase(columnName)) {
-							// Special case for C_BPartner.AD_OrgBP_ID defined as Button in dictionary
-							convertTable = "AD_Org";
-						} else if (convertTable != null
-								&& ("AD_Ref_List".equalsIgnoreCase(convertTable)
-										|| "AD_Language".equalsIgnoreCase(columnName)
-										|| "EntityType".equalsIgnoreCase(columnName))) {
-							convertTable = "";
-						} else if ("Record_ID".equalsIgnoreCase(columnName) && table.getColumnIndex("AD_Table_ID") > 0) {
+						String convertTable = convertTables[i];
+						if (convertRecordID.equals(convertTable)) {
 							// Special case for Record_ID
 							int tableId = rsGD.getInt("AD_Table_ID");
 							convertTable = getExternalTableName(tableId);
-						} else if ("AD_Preference".equalsIgnoreCase(tableName) && "Value".equalsIgnoreCase(columnName)) {
-							// Special case for Record_ID
+						} else if (convertPreference.equals(convertTable)) {
+							// Special case for AD_Preference.Value
 							String att = rsGD.getString("Attribute");
 							if (att.toUpperCase().endsWith("_ID")) {
 								convertTable = att.substring(0, att.length()-3);
@@ -639,11 +647,15 @@ public class MoveClient extends SvrProcess {
 			} catch (SQLException e) {
 				throw new AdempiereException("Could not execute external query: " + selectGetData + "\nCause = " + e.getLocalizedMessage());
 			} finally {
-				DB.close(rsGD, stmtGD);
+				throttle.close(rsGD, stmtGD);
 			}
 
 		}
 
+		if (p_tableMapStaging != null) {
+			DB.executeUpdateEx("DROP TABLE " + p_tableMapStaging, get_TrxName());
+		}
+
 		// commit - here it can throw errors because of foreign keys, verify and inform
 		statusUpdate("Committing.  Validating foreign keys");
 		try {
@@ -653,15 +665,280 @@ public class MoveClient extends SvrProcess {
 		}
 	}
 
+	private List<MColumn> getColumnsToMove(MTable table, StringBuilder columnsSB, StringBuilder qColumnsSB, StringBuilder valuesSB) {
+		// the active, non virtual and verified columns of the table, filling the column lists for the queries
+		String tableName = table.getTableName();
+		List<MColumn> columns = new ArrayList<MColumn>();
+		for (MColumn column : table.getColumns(false)) {
+			if (!column.isActive() || column.getColumnSQL() != null) {
+				continue;
+			}
+			String columnName = column.getColumnName();
+			if (! p_columnsVerified.contains(tableName.toUpperCase() + "." + columnName.toUpperCase())) {
+				continue;
+			}
+			if (columnsSB.length() > 0) {
+				qColumnsSB.append(",");
+				columnsSB.append(",");
+				valuesSB.append(",");
+			}
+			qColumnsSB.append(tableName).append(".").append(columnName);
+			columnsSB.append(columnName);
+			valuesSB.append("?");
+			columns.add(column);
+		}
+		return columns;
+	}
+
+	private String getConvertTable(MTable table, MColumn column) {
+		// the table to convert the IDs of the column, empty when the column is not converted
+		// or convertRecordID/convertPreference when the table depends on the data of the row
+		String tableName = table.getTableName();
+		String columnName = column.getColumnName();
+		String convertTable = column.getReferenceTableName();
+		if ((tableName + "_ID").equalsIgnoreCase(columnName)) {
+			convertTable = tableName;
+		} else if ("C_BPartner".equalsIgnoreCase(tableName) && "AD_OrgBP_ID".equalsIgnoreCase(columnName)) {
+			// Special case for C_BPartner.AD_OrgBP_ID defined as Button in dictionary
+			convertTable = "AD_Org";
+		} else if (convertTable != null
+				&& ("AD_Ref_List".equalsIgnoreCase(convertTable)
+						|| "AD_Language".equalsIgnoreCase(columnName)
+						|| "EntityType".equalsIgnoreCase(columnName))) {
+			convertTable = "";
+		} else if ("Record_ID".equalsIgnoreCase(columnName) && table.getColumnIndex("AD_Table_ID") > 0) {
+			// Special case for Record_ID
+			convertTable = convertRecordID;
+		} else if ("AD_Preference".equalsIgnoreCase(tableName) && "Value".equalsIgnoreCase(columnName)) {
+			// Special case for AD_Preference.Value
+			convertTable = convertPreference;
+		}
+		return convertTable == null ? "" : convertTable;
+	}
+
+	private String getSelectExternalData(String tableName, CharSequence qColumns) {
+		StringBuilder selectGetDataSB = new StringBuilder()
+				.append("SELECT ").append(qColumns)
+				.append(" FROM ").append(tableName);
+		if ("AD_PInstance_Log".equalsIgnoreCase(tableName)) {
+			selectGetDataSB.append(" JOIN AD_PInstance ON (AD_PInstance_Log.AD_PInstance_ID=AD_PInstance.AD_PInstance_ID)");
+			selectGetDataSB.append(" JOIN AD_Client ON (AD_PInstance.AD_Client_ID=AD_Client.AD_Client_ID)");
+		} else if (! "AD_Client".equalsIgnoreCase(tableName)) {
+			selectGetDataSB.append(" JOIN AD_Client ON (").append(tableName).append(".AD_Client_ID=AD_Client.AD_Client_ID)");
+		}
+		selectGetDataSB.append(" WHERE ").append(p_whereClient);
+		return DB.getDatabase().convertStatement(selectGetDataSB.toString());
+	}
+
+	private void insertDataSetBased(MTable table) {
+		// load the raw source rows into an unlogged staging table and then insert into target
+		// converting all the foreign keys in a single INSERT ... SELECT joined with T_MoveClient
+		String tableName = table.getTableName();
+		statusUpdate("Staging data for table " + tableName);
+		StringBuilder valuesSB = new StringBuilder();
+		StringBuilder columnsSB = new StringBuilder();
+		StringBuilder qColumnsSB = new StringBuilder();
+		List<MColumn> columns = getColumnsToMove(table, columnsSB, qColumnsSB, valuesSB);
+		String stagingTable = "T_MoveClient_" + getAD_PInstance_ID() + "_" + table.getAD_Table_ID();
+		DB.executeUpdateEx("CREATE UNLOGGED TABLE " + stagingTable + " AS SELECT " + columnsSB + " FROM " + tableName + " WHERE 1=2", get_TrxName());
+		loadStaging(stagingTable, columnsSB, valuesSB, getSelectExternalData(tableName, qColumnsSB), columns.size());
+
+		statusUpdate("Inserting data for table " + tableName);
+		StringBuilder selectSB = new StringBuilder();
+		StringBuilder joinsSB = new StringBuilder();
+		StringBuilder orphanWhereSB = new StringBuilder();
+		List<String[]> orphanChecks = new ArrayList<String[]>(); // column name, source ID, joins, orphan condition
+		int nJoin = 0;
+		for (MColumn column : columns) {
+			String columnName = column.getColumnName();
+			String sourceCol = "s." + columnName;
+			if (selectSB.length() > 0) {
+				selectSB.append(",");
+			}
+			String convertTable = getConvertTable(table, column);
+			if (Util.isEmpty(convertTable)) {
+				selectSB.append(sourceCol);
+				continue;
+			}
+			nJoin++;
+			String m = "m" + nJoin;
+			String conversion; // the joins needed to convert the column
+			String sourceId = sourceCol; // the source ID to convert
+			String orphanWhere; // condition of the source IDs without conversion
+			if (convertRecordID.equals(convertTable)) {
+				// Special case for Record_ID - the table to convert is looked up from the external AD_Table
+				String t = "t" + nJoin;
+				conversion = " LEFT JOIN " + getTableMapStaging() + " " + t + " ON (" + t + ".AD_Table_ID=s.AD_Table_ID)"
+						+ " LEFT JOIN T_MoveClient " + m + " ON (" + m + ".AD_PInstance_ID=" + getAD_PInstance_ID()
+						+ " AND " + m + ".TableName=UPPER(" + t + ".TableName) AND " + m + ".Source_ID=" + sourceCol + ")";
+				selectSB.append("CASE WHEN ").append(sourceCol).append("<").append(MTable.MAX_OFFICIAL_ID)
+				.append(" OR ").append(t).append(".TableName IS NULL THEN ").append(sourceCol)
+				.append(" ELSE ").append(m).append(".Target_ID END");
+				orphanWhere = sourceCol + ">=" + MTable.MAX_OFFICIAL_ID + " AND " + t + ".TableName IS NOT NULL AND " + m + ".Target_ID IS NULL";
+			} else if (convertPreference.equals(convertTable)) {
+				// Special case for AD_Preference.Value - the table to convert is derived from the Attribute
+				sourceId = "CASE WHEN UPPER(s.Attribute) LIKE '%|_ID' ESCAPE '|' AND s.Value<>'' AND TRANSLATE(s.Value,'0123456789','')=''"
+						+ " THEN CAST(s.Value AS NUMERIC) END";
+				conversion = " LEFT JOIN T_MoveClient " + m + " ON (" + m + ".AD_PInstance_ID=" + getAD_PInstance_ID()
+						+ " AND " + m + ".TableName=CASE WHEN UPPER(s.Attribute)='C_DOCTYPETARGET_ID' THEN 'C_DOCTYPE'"
+						+ " WHEN UPPER(s.Attribute) LIKE '%|_ID' ESCAPE '|' THEN UPPER(SUBSTR(s.Attribute,1,LENGTH(s.Attribute)-3)) END"
+						+ " AND " + m + ".Source_ID=" + sourceId + ")";
+				selectSB.append("CASE WHEN ").append(sourceId).append(" IS NULL OR ").append(sourceId).append("<").append(MTable.MAX_OFFICIAL_ID)
+				.append(" THEN ").append(sourceCol)
+				.append(" ELSE CAST(").append(m).append(".Target_ID AS VARCHAR) END");
+				orphanWhere = sourceId + ">=" + MTable.MAX_OFFICIAL_ID + " AND " + m + ".Target_ID IS NULL";
+			} else {
+				// Foreign - potential ID conversion
+				conversion = " LEFT JOIN T_MoveClient " + m + " ON (" + m + ".AD_PInstance_ID=" + getAD_PInstance_ID()
+						+ " AND " + m + ".TableName=" + DB.TO_STRING(convertTable.toUpperCase()) + " AND " + m + ".Source_ID=" + sourceCol + ")";
+				selectSB.append("CASE WHEN ").append(sourceCol).append("<").append(MTable.MAX_OFFICIAL_ID)
+				.append(" THEN ").append(sourceCol)
+				.append(" ELSE ").append(m).append(".Target_ID END");
+				orphanWhere = sourceCol + ">=" + MTable.MAX_OFFICIAL_ID + " AND " + m + ".Target_ID IS NULL";
+			}
+			joinsSB.append(conversion);
+			if (orphanWhereSB.length() > 0) {
+				orphanWhereSB.append(" OR ");
+			}
+			orphanWhereSB.append("(").append(orphanWhere).append(")");
+			orphanChecks.add(new String[] {columnName, sourceId, conversion, orphanWhere});
+		}
+
+		// verify there are no orphan records before inserting, a single query for the whole table
+		// and only when it finds orphans one query per column to report which one
+		if (orphanChecks.size() > 0) {
+			String sqlOrphans = "SELECT COUNT(*) FROM " + stagingTable + " s" + joinsSB + " WHERE " + orphanWhereSB;
+			int cntOrphans;
+			try {
+				cntOrphans = DB.getSQLValueEx(get_TrxName(), sqlOrphans);
+			} catch (Exception e) {
+				throw new AdempiereException("Could not execute query: " + sqlOrphans + "\nCause = " + e.getLocalizedMessage());
+			}
+			if (cntOrphans > 0) {
+				for (String[] orphanCheck : orphanChecks) {
+					String sqlOrphan = "SELECT " + orphanCheck[1] + " FROM " + stagingTable + " s" + orphanCheck[2] + " WHERE " + orphanCheck[3];
+					int orphanId;
+					try {
+						orphanId = DB.getSQLValueEx(get_TrxName(), sqlOrphan);
+					} catch (Exception e) {
+						throw new AdempiereException("Could not execute query: " + sqlOrphan + "\nCause = " + e.getLocalizedMessage());
+					}
+					if (orphanId >= 0) {
+						throw new AdempiereException("Found orphan record in column " + tableName + "." + orphanCheck[0] + ": " + orphanId);
+					}
+				}
+				throw new AdempiereException("Found " + cntOrphans + " orphan records in table " + tableName);
+			}
+		}
+
+		StringBuilder insertSB = new StringBuilder()
+				.append("INSERT INTO ").append(tableName).append("(").append(columnsSB).append(")")
+				.append(" SELECT ").append(selectSB)
+				.append(" FROM ").append(stagingTable).append(" s").append(joinsSB);
+		try {
+			DB.executeUpdateEx(insertSB.toString(), get_TrxName());
+		} catch (Exception e) {
+			throw new AdempiereException("Could not execute: " + insertSB + "\nCause = " + e.getLocalizedMessage());
+		}
+		// the staging data is not needed anymore, the files of a dropped table are only removed on commit
+		// but truncating a table created in the same transaction frees the space immediately
+		DB.executeUpdateEx("TRUNCATE " + stagingTable, get_TrxName());
+		DB.executeUpdateEx("DROP TABLE " + stagingTable, get_TrxName());
+	}
+
+	private String getTableMapStaging() {
+		if (p_tableMapStaging == null) {
+			String stagingTable = "T_MoveClient_" + getAD_PInstance_ID() + "_Tbl";
+			DB.executeUpdateEx("CREATE UNLOGGED TABLE " + stagingTable + " AS SELECT AD_Table_ID, TableName FROM AD_Table WHERE 1=2", get_TrxName());
+			loadStaging(stagingTable, "AD_Table_ID,TableName", "?,?",
+					DB.getDatabase().convertStatement("SELECT AD_Table_ID, TableName FROM AD_Table"), 2);
+			p_tableMapStaging = stagingTable;
+		}
+		return p_tableMapStaging;
+	}
+
+	private void loadStaging(String stagingTable, CharSequence columns, CharSequence values, String selectGetData, int ncols) {
+		final int batchSize = 1000;
+		String insertStaging = "INSERT INTO " + stagingTable + "(" + columns + ") VALUES (" + values + ")";
+		PreparedStatement stmtIS = null;
+		PreparedStatement stmtGD = null;
+		ResultSet rsGD = null;
+		Object[] rowValues = new Object[ncols];
+		int[] types = new int[ncols];
+		try {
+			stmtIS = DB.prepareStatement(insertStaging, get_TrxName());
+			stmtGD = extractConn.prepareStatement(selectGetData, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			rsGD = throttle.stream(stmtGD);
+			ResultSetMetaData rsmd = rsGD.getMetaData();
+			for (int i = 0; i < ncols; i++) {
+				types[i] = rsmd.getColumnType(i + 1);
+			}
+			int nrows = 0;
+			while (throttle.next(rsGD)) {
+				for (int i = 0; i < ncols; i++) {
+					rowValues[i] = rsGD.getObject(i + 1);
+				}
+				nrows++;
+				addStagingRow(stmtIS, stagingTable, rowValues, types, nrows % batchSize == 0);
+			}
+			if (nrows % batchSize != 0) {
+				executeStagingBatch(stmtIS, stagingTable);
+			}
+		} catch (SQLException e) {
+			throw new AdempiereException("Could not execute external query: " + selectGetData + "\nCause = " + e.getLocalizedMessage());
+		} finally {
+			throttle.close(rsGD, stmtGD);
+			DB.close(stmtIS);
+		}
+		// statistics for the planner, unlogged tables are not analyzed until autovacuum reaches them
+		DB.executeUpdateEx("ANALYZE " + stagingTable, get_TrxName());
+	}
+
+	private void addStagingRow(PreparedStatement stmtIS, String stagingTable, Object[] rowValues, int[] types, boolean execute) {
+		try {
+			for (int i = 0; i < rowValues.length; i++) {
+				if (rowValues[i] == null) {
+					stmtIS.setNull(i + 1, types[i]);
+				} else {
+					stmtIS.setObject(i + 1, rowValues[i]);
+				}
+			}
+			stmtIS.addBatch();
+		} catch (SQLException e) {
+			throw new AdempiereException("Could not insert into staging table " + stagingTable + "\nCause = " + getSQLCause(e));
+		}
+		if (execute) {
+			executeStagingBatch(stmtIS, stagingTable);
+		}
+	}
+
+	private void executeStagingBatch(PreparedStatement stmtIS, String stagingTable) {
+		try {
+			stmtIS.executeBatch();
+		} catch (SQLException e) {
+			throw new AdempiereException("Could not insert into staging table " + stagingTable + "\nCause = " + getSQLCause(e));
+		}
+	}
+
+	private String getSQLCause(SQLException e) {
+		// the real cause of a failed batch is in the next exception
+		StringBuilder cause = new StringBuilder(e.getLocalizedMessage());
+		SQLException next = e.getNextException();
+		if (next != null && next != e) {
+			cause.append("\nNext = ").append(next.getLocalizedMessage());
+		}
+		return cause.toString();
+	}
+
 	private String getExternalTableName(int tableId) {
 		String tableName = null;
 		String sql = DB.getDatabase().convertStatement("SELECT TableName FROM AD_Table WHERE AD_Table_ID=?");
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			stmt = externalConn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt = extractConn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 			stmt.setInt(1, tableId);
-			rs = stmt.executeQuery();
+			rs = throttle.executeQuery(stmt);
 			if (rs.next())
 				tableName = rs.getString(1);
 		} catch (SQLException e) {